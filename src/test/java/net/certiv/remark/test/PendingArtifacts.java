@@ -0,0 +1,133 @@
+/* Copyright � 2015-2016 Gerald Rosenberg.
+ * Use of this source code is governed by a BSD-style
+ * license that can be found in the License.md file.
+ */
+package net.certiv.remark.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Collection of the 'expected' result files found to be missing or different from the 'found'
+ * results during read-only (deferred) assertion runs. Each test instance keeps its own collection,
+ * so artifacts are written only as accepted by their owning test - see
+ * {@link TestBase#acceptArtifacts}.
+ */
+public class PendingArtifacts {
+
+	/** Selects the pending artifacts to accept. */
+	public enum Accept {
+		/** Accept nothing; artifacts remain pending */
+		NONE,
+		/** Accept only artifacts whose 'expected' file does not exist or is empty */
+		MISSING,
+		/** Accept all artifacts, replacing changed 'expected' files */
+		ALL;
+	}
+
+	/** A missing or changed 'expected' result. */
+	public static class Artifact {
+
+		/** The 'expected' result file */
+		public final File file;
+		/** The snippet name */
+		public final String name;
+		/** The 'found' result */
+		public final String found;
+		/** The prior 'expected' result, or null if the file does not exist or is empty */
+		public final String expected;
+
+		Artifact(File file, String name, String found, String expected) {
+			this.file = file;
+			this.name = name;
+			this.found = found;
+			this.expected = expected;
+		}
+
+		public boolean isMissing() {
+			return expected == null;
+		}
+
+		@Override
+		public String toString() {
+			if (isMissing()) {
+				return String.format("added   %s (%d lines)", file.getPath(), lines(found).length);
+			}
+			int[] delta = delta(expected, found);
+			return String.format("changed %s (+%d -%d lines)", file.getPath(), delta[0], delta[1]);
+		}
+	}
+
+	/* Pending artifacts, by file path */
+	private final Map<String, Artifact> pending = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Records a missing or changed 'expected' result, replacing any prior pending result for the same
+	 * file.
+	 *
+	 * @param file the 'expected' result file
+	 * @param name the snippet name
+	 * @param found the 'found' result
+	 * @param expected the prior 'expected' result, or null if the file does not exist or is empty
+	 */
+	public void add(File file, String name, String found, String expected) {
+		pending.put(file.getPath(), new Artifact(file, name, found, expected));
+	}
+
+	/** Returns the pending artifacts, ordered by file path */
+	public List<Artifact> list() {
+		return new ArrayList<>(pending.values());
+	}
+
+	/**
+	 * Removes and returns the selected pending artifacts.
+	 *
+	 * @param accept the artifacts to select
+	 * @param prefix if not null, selects only artifacts of snippets whose name starts with the prefix
+	 * @return the selected artifacts, ordered by file path
+	 */
+	public List<Artifact> take(Accept accept, String prefix) {
+		List<Artifact> taken = new ArrayList<>();
+		if (accept == Accept.NONE) return taken;
+		for (Iterator<Artifact> it = pending.values().iterator(); it.hasNext();) {
+			Artifact artifact = it.next();
+			if (accept == Accept.MISSING && !artifact.isMissing()) continue;
+			if (prefix != null && !artifact.name.startsWith(prefix)) continue;
+			taken.add(artifact);
+			it.remove();
+		}
+		return taken;
+	}
+
+	/* Counts the lines added to and removed from 'prior', ignoring order */
+	private static int[] delta(String prior, String next) {
+		Map<String, Integer> counts = new HashMap<>();
+		for (String line : lines(prior)) {
+			counts.merge(line, 1, Integer::sum);
+		}
+		int added = 0;
+		for (String line : lines(next)) {
+			Integer cnt = counts.get(line);
+			if (cnt == null || cnt == 0) {
+				added++;
+			} else {
+				counts.put(line, cnt - 1);
+			}
+		}
+		int removed = 0;
+		for (int cnt : counts.values()) {
+			removed += cnt;
+		}
+		return new int[] { added, removed };
+	}
+
+	private static String[] lines(String text) {
+		if (text.isEmpty()) return new String[0];
+		return text.split("\\r?\\n");
+	}
+}
@@ -0,0 +1,240 @@
+/* Copyright � 2015-2016 Gerald Rosenberg.
+ * Use of this source code is governed by a BSD-style
+ * license that can be found in the License.md file.
+ */
+package net.certiv.remark.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+
+/**
+ * An ordered set of named tree-walker phases. Each phase is timed and, where the JVM supports it,
+ * allocation-counted each time the pipeline is run.
+ * <p>
+ * A phase receives the parse-tree and the results of the phases it depends on. Dependencies must be
+ * registered before their dependents, so registration order is always a valid sequential order.
+ * When run concurrently, each phase starts as soon as its dependencies have completed; independent
+ * phases then walk the shared parse-tree in parallel and must treat it as read-only. Since a phase
+ * sees only the results of its dependencies, concurrent and sequential runs produce identical
+ * results.
+ */
+public class PhasePipeline {
+
+	/** A single tree-walker phase. */
+	public interface Phase {
+
+		/**
+		 * Runs the phase.
+		 *
+		 * @param tree the parse-tree to walk; must not be modified
+		 * @param prior the results of the phases this phase depends on
+		 * @return the phase result
+		 */
+		Object run(ParseTree tree, Results prior);
+	}
+
+	/** The timing of a single phase run. */
+	public static class Timing {
+
+		public final String name;
+		/** Elapsed wall-clock time, in nanoseconds */
+		public final long nanos;
+		/** Bytes allocated by the running thread, or -1 if not supported */
+		public final long allocated;
+
+		Timing(String name, long nanos, long allocated) {
+			this.name = name;
+			this.nanos = nanos;
+			this.allocated = allocated;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-20s %10.3f ms %12d bytes", name, nanos / 1e6, allocated);
+		}
+	}
+
+	/** The results and timings of a pipeline run, in phase registration order. */
+	public static class Results {
+
+		private final Map<String, Object> results = new LinkedHashMap<>();
+		private final List<Timing> timings = new ArrayList<>();
+
+		public Object get(String name) {
+			return results.get(name);
+		}
+
+		public List<Timing> getTimings() {
+			return Collections.unmodifiableList(timings);
+		}
+	}
+
+	private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "PhasePipeline");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+	/**
+	 * Registers a named phase.
+	 *
+	 * @param name a unique phase name
+	 * @param phase the phase
+	 * @param dependsOn the names of previously registered phases whose results this phase requires
+	 * @return this pipeline
+	 */
+	public PhasePipeline add(String name, Phase phase, String... dependsOn) {
+		if (stages.containsKey(name)) {
+			throw new IllegalArgumentException("Duplicate phase: " + name);
+		}
+		for (String dep : dependsOn) {
+			if (!stages.containsKey(dep)) {
+				throw new IllegalArgumentException("Phase " + name + " depends on unregistered phase: " + dep);
+			}
+		}
+		stages.put(name, new Stage(name, phase, dependsOn));
+		return this;
+	}
+
+	public boolean isEmpty() {
+		return stages.isEmpty();
+	}
+
+	/**
+	 * Runs all phases against the given parse-tree.
+	 *
+	 * @param tree the parse-tree
+	 * @param concurrent if true, independent phases are run in parallel
+	 * @return the phase results and timings
+	 */
+	public Results run(ParseTree tree, boolean concurrent) {
+		Map<String, Timed> done = concurrent ? runConcurrent(tree) : runSequential(tree);
+		Results results = new Results();
+		for (Timed timed : done.values()) {
+			results.results.put(timed.timing.name, timed.result);
+			results.timings.add(timed.timing);
+		}
+		return results;
+	}
+
+	private Map<String, Timed> runSequential(ParseTree tree) {
+		Map<String, Timed> done = new LinkedHashMap<>();
+		for (Stage stage : stages.values()) {
+			done.put(stage.name, stage.run(tree, done));
+		}
+		return done;
+	}
+
+	private Map<String, Timed> runConcurrent(ParseTree tree) {
+		Map<String, CompletableFuture<Timed>> futures = new LinkedHashMap<>();
+		for (Stage stage : stages.values()) {
+			// a per-stage copy: 'futures' is still being filled while stages run
+			Map<String, CompletableFuture<Timed>> deps = new LinkedHashMap<>();
+			for (String dep : stage.dependsOn) {
+				deps.put(dep, futures.get(dep));
+			}
+			CompletableFuture<?>[] waits = deps.values().toArray(new CompletableFuture<?>[deps.size()]);
+			CompletableFuture<Timed> future = CompletableFuture.allOf(waits).thenApplyAsync(v -> {
+				Map<String, Timed> prior = new LinkedHashMap<>();
+				for (Map.Entry<String, CompletableFuture<Timed>> dep : deps.entrySet()) {
+					prior.put(dep.getKey(), dep.getValue().join());
+				}
+				return stage.run(tree, prior);
+			}, executor);
+			futures.put(stage.name, future);
+		}
+
+		Map<String, Timed> done = new LinkedHashMap<>();
+		try {
+			for (Map.Entry<String, CompletableFuture<Timed>> entry : futures.entrySet()) {
+				done.put(entry.getKey(), entry.getValue().join());
+			}
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw e;
+		}
+		return done;
+	}
+
+	/* Thread allocation counter, or null if not supported */
+	private static final com.sun.management.ThreadMXBean allocations = allocationBean();
+	/* Bytes allocated by a measurement itself: subtracted from each phase allocation count */
+	private static final long overhead = overhead();
+
+	private static com.sun.management.ThreadMXBean allocationBean() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+			if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) return sun;
+		}
+		return null;
+	}
+
+	private static long overhead() {
+		if (allocations == null) return 0;
+		long min = Long.MAX_VALUE;
+		for (int cnt = 0; cnt < 10; cnt++) { // smallest of several back-to-back pairs, once warmed up
+			long start = allocated();
+			min = Math.min(min, allocated() - start);
+		}
+		return min;
+	}
+
+	private static long allocated() {
+		if (allocations == null) return -1;
+		return allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static class Stage {
+
+		final String name;
+		final Phase phase;
+		final String[] dependsOn;
+
+		Stage(String name, Phase phase, String[] dependsOn) {
+			this.name = name;
+			this.phase = phase;
+			this.dependsOn = dependsOn;
+		}
+
+		Timed run(ParseTree tree, Map<String, Timed> done) {
+			Results prior = new Results();
+			for (String dep : dependsOn) {
+				prior.results.put(dep, done.get(dep).result);
+			}
+
+			long alloc = allocated();
+			long start = System.nanoTime();
+			Object result = phase.run(tree, prior);
+			long nanos = System.nanoTime() - start;
+			if (alloc >= 0) alloc = Math.max(0, allocated() - alloc - overhead);
+			return new Timed(result, new Timing(name, nanos, alloc));
+		}
+	}
+
+	private static class Timed {
+
+		final Object result;
+		final Timing timing;
+
+		Timed(Object result, Timing timing) {
+			this.result = result;
+			this.timing = timing;
+		}
+	}
+}
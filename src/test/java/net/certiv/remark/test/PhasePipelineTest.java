@@ -0,0 +1,108 @@
+/* Copyright � 2015-2016 Gerald Rosenberg.
+ * Use of this source code is governed by a BSD-style
+ * license that can be found in the License.md file.
+ */
+package net.certiv.remark.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that {@link PhasePipeline} concurrent runs match sequential runs, and its registration and
+ * failure behaviors.
+ */
+public class PhasePipelineTest {
+
+	private static final List<String> Names = Arrays.asList("a", "b", "c", "d");
+
+	/* a diamond: b and c depend on a; d depends on b and c */
+	private PhasePipeline diamond() {
+		PhasePipeline phases = new PhasePipeline();
+		phases.add("a", (tree, prior) -> "a");
+		phases.add("b", (tree, prior) -> {
+			sleep(20);
+			return prior.get("a") + ">b";
+		}, "a");
+		phases.add("c", (tree, prior) -> {
+			sleep(10);
+			return prior.get("a") + ">c";
+		}, "a");
+		phases.add("d", (tree, prior) -> "[" + prior.get("b") + "," + prior.get("c") + "," + prior.get("a") + "]>d",
+				"b", "c");
+		return phases;
+	}
+
+	@Test
+	public void testConcurrentMatchesSequential() {
+		PhasePipeline phases = diamond();
+		PhasePipeline.Results sequential = phases.run(null, false);
+		PhasePipeline.Results concurrent = phases.run(null, true);
+
+		Assert.assertEquals(sequential.get("d"), "[a>b,a>c,null]>d");
+		for (String name : Names) {
+			Assert.assertEquals(concurrent.get(name), sequential.get(name));
+		}
+	}
+
+	@Test
+	public void testTimingsInRegistrationOrder() {
+		PhasePipeline phases = diamond();
+		for (boolean concurrent : new boolean[] { false, true }) {
+			List<String> names = new ArrayList<>();
+			for (PhasePipeline.Timing timing : phases.run(null, concurrent).getTimings()) {
+				names.add(timing.name);
+			}
+			Assert.assertEquals(names, Names);
+		}
+	}
+
+	@Test
+	public void testFailureRethrowsOriginal() {
+		IllegalStateException boom = new IllegalStateException("boom");
+		PhasePipeline phases = new PhasePipeline();
+		phases.add("a", (tree, prior) -> "a");
+		phases.add("b", (tree, prior) -> {
+			throw boom;
+		}, "a");
+		phases.add("c", (tree, prior) -> "c", "b");
+
+		for (boolean concurrent : new boolean[] { false, true }) {
+			try {
+				phases.run(null, concurrent);
+				Assert.fail("expected failure");
+			} catch (IllegalStateException e) {
+				Assert.assertTrue(e == boom, "original exception rethrown");
+			}
+		}
+	}
+
+	@Test
+	public void testRejectsDuplicateName() {
+		PhasePipeline phases = new PhasePipeline().add("a", (tree, prior) -> "a");
+		try {
+			phases.add("a", (tree, prior) -> "a");
+			Assert.fail("expected rejection");
+		} catch (IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void testRejectsUnregisteredDependency() {
+		PhasePipeline phases = new PhasePipeline().add("a", (tree, prior) -> "a");
+		try {
+			phases.add("b", (tree, prior) -> "b", "a", "z");
+			Assert.fail("expected rejection");
+		} catch (IllegalArgumentException e) {}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
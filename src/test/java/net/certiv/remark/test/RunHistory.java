@@ -0,0 +1,584 @@
+/* Copyright � 2015-2016 Gerald Rosenberg.
+ * Use of this source code is governed by a BSD-style
+ * license that can be found in the License.md file.
+ */
+package net.certiv.remark.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Local, append-only store of per-snippet performance metrics, and a comparison report of the
+ * statistically significant changes between runs.
+ * <p>
+ * The store is a single tab-separated text file, {@code <baseDir>/test.history}. Each run appends a
+ * header line, identifying the run, git commit and JVM version, followed by one line per sample:
+ *
+ * <pre>
+ * #run  &lt;runId&gt;  &lt;timestamp&gt;  &lt;commit&gt;  &lt;jvm&gt;
+ * &lt;runId&gt;  &lt;snippet&gt;  &lt;metric&gt;  &lt;value&gt;
+ * </pre>
+ *
+ * A run is a single JVM execution; all test classes executed within it share its run id. Samples
+ * are compared using Welch's t-test or, where one side has a single sample, a prediction interval;
+ * parse-tree metrics, being deterministic, are compared exactly. The resulting p-values are
+ * adjusted for multiple comparisons (Benjamini-Hochberg).
+ * <p>
+ * Each test records a single sample of each timing per run, so timings can be tested only against
+ * a rolling baseline of several runs.
+ */
+public class RunHistory {
+
+	public static final String HistoryFile = "test.history";
+
+	/** False discovery rate for reporting a change */
+	public static final double Alpha = 0.05;
+	/** Number of runs in the default rolling baseline */
+	public static final int Rolling = 5;
+	/** Minimum relative change for reporting a change */
+	public static final double MinChange = 0.05;
+
+	private static final String RunTag = "#run";
+	private static final String Tab = "\t";
+
+	private static final String RunId = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+
+	private final File file;
+	private final Queue<String> samples = new ConcurrentLinkedQueue<>();
+
+	/** A recorded run. */
+	public static class Run {
+
+		public final String id;
+		public final String timestamp;
+		public final String commit;
+		public final String jvm;
+		/** Samples by snippet and metric, keyed as {@code <snippet>\t<metric>} */
+		final Map<String, List<Double>> samples = new TreeMap<>();
+
+		Run(String id, String timestamp, String commit, String jvm) {
+			this.id = id;
+			this.timestamp = timestamp;
+			this.commit = commit;
+			this.jvm = jvm;
+		}
+
+		@Override
+		public String toString() {
+			return id + " (" + shortCommit(commit) + ", Java " + jvm + ")";
+		}
+	}
+
+	public RunHistory(String baseDir) {
+		this.file = new File(TestUtils.concat(baseDir, HistoryFile));
+	}
+
+	/** Returns the id of the current run */
+	public static String getRunId() {
+		return RunId;
+	}
+
+	/**
+	 * Records a sample for the current run. Samples are held in memory until {@link #append}.
+	 *
+	 * @param snippet the qualified snippet name
+	 * @param metric the metric name
+	 * @param value the sample value
+	 */
+	public void record(String snippet, String metric, long value) {
+		samples.add(RunId + Tab + snippet + Tab + metric + Tab + value);
+	}
+
+	/**
+	 * Appends the recorded samples, preceded by the run header, to the history file.
+	 *
+	 * @throws IOException
+	 */
+	public void append() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (String sample = samples.poll(); sample != null; sample = samples.poll()) {
+			sb.append(sample).append('\n');
+		}
+		if (sb.length() == 0) return;
+
+		String timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date());
+		String header = RunTag + Tab + RunId + Tab + timestamp + Tab + gitCommit(file.getParentFile()) + Tab
+				+ System.getProperty("java.version") + '\n';
+		synchronized (RunHistory.class) {
+			Files.write(file.toPath(), (header + sb).getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+	}
+
+	/**
+	 * Loads all recorded runs, oldest first.
+	 *
+	 * @return the runs
+	 * @throws IOException
+	 */
+	public List<Run> load() throws IOException {
+		Map<String, Run> runs = new LinkedHashMap<>();
+		if (!file.isFile()) return new ArrayList<>();
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			String[] cols = line.split(Tab);
+			if (cols[0].equals(RunTag)) {
+				if (cols.length == 5 && !runs.containsKey(cols[1])) {
+					runs.put(cols[1], new Run(cols[1], cols[2], cols[3], cols[4]));
+				}
+			} else if (cols.length == 4) {
+				Run run = runs.get(cols[0]);
+				if (run == null) continue;
+				try {
+					double value = Double.parseDouble(cols[3]);
+					String key = cols[1] + Tab + cols[2];
+					List<Double> values = run.samples.get(key);
+					if (values == null) {
+						values = new ArrayList<>();
+						run.samples.put(key, values);
+					}
+					values.add(value);
+				} catch (NumberFormatException e) {}
+			}
+		}
+		return new ArrayList<>(runs.values());
+	}
+
+	/**
+	 * Selects a run by id, by git commit prefix (most recent matching run), or by a negative index
+	 * counted back from the most recent run ({@code -1} being the most recent).
+	 *
+	 * @param runs the loaded runs
+	 * @param selector the run selector
+	 * @return the index of the selected run
+	 */
+	public static int select(List<Run> runs, String selector) {
+		if (selector.startsWith("-")) {
+			try {
+				int idx = runs.size() + Integer.parseInt(selector);
+				if (idx >= 0 && idx < runs.size()) return idx;
+			} catch (NumberFormatException e) {}
+		} else {
+			for (int idx = runs.size() - 1; idx >= 0; idx--) {
+				if (runs.get(idx).id.equals(selector)) return idx;
+			}
+			for (int idx = runs.size() - 1; idx >= 0; idx--) {
+				if (runs.get(idx).commit.startsWith(selector)) return idx;
+			}
+		}
+		throw new IllegalArgumentException("No such run: " + selector);
+	}
+
+	/**
+	 * Compares a candidate run against a baseline of one or more runs and reports the statistically
+	 * significant regressions and improvements, each ranked by relative change.
+	 *
+	 * @param baseline the baseline runs, whose samples are pooled
+	 * @param candidate the candidate run
+	 * @return the report
+	 */
+	public static String compare(List<Run> baseline, Run candidate) {
+		Map<String, List<Double>> base = new TreeMap<>();
+		for (Run run : baseline) {
+			for (Map.Entry<String, List<Double>> entry : run.samples.entrySet()) {
+				List<Double> values = base.get(entry.getKey());
+				if (values == null) {
+					values = new ArrayList<>();
+					base.put(entry.getKey(), values);
+				}
+				values.addAll(entry.getValue());
+			}
+		}
+
+		List<Change> tested = new ArrayList<>();
+		Map<String, List<Double>> logRatios = new TreeMap<>();
+		int untested = 0;
+		for (Map.Entry<String, List<Double>> entry : candidate.samples.entrySet()) {
+			List<Double> b = base.get(entry.getKey());
+			if (b == null) continue;
+			Change change = Change.of(entry.getKey(), b, entry.getValue());
+			if (change == null) {
+				untested++;
+				continue;
+			}
+			if (change.baseMean > 0 && change.candMean > 0) {
+				List<Double> ratios = logRatios.get(change.metric);
+				if (ratios == null) {
+					ratios = new ArrayList<>();
+					logRatios.put(change.metric, ratios);
+				}
+				ratios.add(Math.log(change.candMean / change.baseMean));
+			}
+			tested.add(change);
+		}
+
+		double[] ps = new double[tested.size()];
+		for (int idx = 0; idx < ps.length; idx++) {
+			ps[idx] = tested.get(idx).p;
+		}
+		double[] qs = adjust(ps);
+		List<Change> regressions = new ArrayList<>();
+		List<Change> improvements = new ArrayList<>();
+		for (int idx = 0; idx < qs.length; idx++) {
+			Change change = tested.get(idx);
+			change.q = qs[idx];
+			if (change.q < Alpha && Math.abs(change.relative) >= MinChange) {
+				(change.relative > 0 ? regressions : improvements).add(change);
+			}
+		}
+		Collections.sort(regressions, Comparator.comparingDouble((Change c) -> -c.relative));
+		Collections.sort(improvements, Comparator.comparingDouble((Change c) -> c.relative));
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("Baseline:  ");
+		for (int idx = 0; idx < baseline.size(); idx++) {
+			if (idx > 0) sb.append(", ");
+			sb.append(baseline.get(idx));
+		}
+		sb.append('\n');
+		sb.append("Candidate: ").append(candidate).append('\n');
+		sb.append(String.format("Significance: q < %.2f (Benjamini-Hochberg, %d tests), change >= %.0f%%%n%n", Alpha,
+				tested.size(), MinChange * 100));
+
+		sb.append("Overall (geometric mean change across snippets):\n");
+		for (Map.Entry<String, List<Double>> entry : logRatios.entrySet()) {
+			List<Double> ratios = entry.getValue();
+			double mean = mean(ratios);
+			sb.append(String.format("  %-28s %+8.1f%%  p=%.4f  (%d snippets)%n", entry.getKey(),
+					(Math.exp(mean) - 1) * 100, signedRank(ratios), ratios.size()));
+		}
+
+		sb.append(String.format("%nRegressions (%d):%n", regressions.size()));
+		for (Change change : regressions) {
+			sb.append("  ").append(change).append('\n');
+		}
+		sb.append(String.format("%nImprovements (%d):%n", improvements.size()));
+		for (Change change : improvements) {
+			sb.append("  ").append(change).append('\n');
+		}
+		if (untested > 0) {
+			sb.append(String.format("%n%d sample sets not tested: a single sample on each side%n", untested));
+			sb.append("  (timings require a rolling baseline)\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Prints a comparison report.
+	 *
+	 * <pre>
+	 * RunHistory &lt;baseDir&gt;
+	 * RunHistory &lt;baseDir&gt; --rolling &lt;n&gt; [&lt;candidate&gt;]
+	 * RunHistory &lt;baseDir&gt; &lt;baseline&gt; [&lt;candidate&gt;]
+	 * </pre>
+	 *
+	 * Runs are selected as by {@link #select}; the candidate defaults to the most recent run. A
+	 * rolling baseline pools the {@code n} runs preceding the candidate; by default, the
+	 * {@value #Rolling} preceding runs. A single baseline run allows only the parse-tree metrics to be
+	 * tested.
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean rolling = args.length > 1 && args[1].equals("--rolling");
+		int n = Rolling;
+		if (rolling) {
+			try {
+				n = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+			} catch (NumberFormatException e) {
+				n = 0;
+			}
+		}
+		if (args.length < 1 || args.length > 4 || rolling && n < 1 || !rolling && args.length > 3) {
+			System.err.println("Usage: RunHistory <baseDir>");
+			System.err.println("       RunHistory <baseDir> --rolling <n> [<candidate>]");
+			System.err.println("       RunHistory <baseDir> <baseline> [<candidate>]");
+			return;
+		}
+		List<Run> runs = new RunHistory(args[0]).load();
+		if (runs.size() < 2) {
+			System.err.println("Not enough recorded runs: " + runs.size());
+			return;
+		}
+
+		List<Run> baseline = new ArrayList<>();
+		int cand;
+		if (rolling || args.length == 1) {
+			cand = args.length > 3 ? select(runs, args[3]) : runs.size() - 1;
+			baseline.addAll(runs.subList(Math.max(0, cand - n), cand));
+		} else {
+			cand = args.length > 2 ? select(runs, args[2]) : runs.size() - 1;
+			baseline.add(runs.get(select(runs, args[1])));
+		}
+		if (baseline.isEmpty()) {
+			System.err.println("No baseline run precedes " + runs.get(cand));
+			return;
+		}
+		System.out.print(compare(baseline, runs.get(cand)));
+	}
+
+	/** A compared snippet metric. */
+	private static class Change {
+
+		final String snippet;
+		final String metric;
+		final double baseMean;
+		final double candMean;
+		final double relative;
+		final double p;
+		/* p adjusted for multiple comparisons */
+		double q = 1;
+
+		Change(String key, double baseMean, double candMean, double p) {
+			int tab = key.indexOf(Tab);
+			this.snippet = key.substring(0, tab);
+			this.metric = key.substring(tab + 1);
+			this.baseMean = baseMean;
+			this.candMean = candMean;
+			this.relative = baseMean != 0 ? (candMean - baseMean) / baseMean : candMean != 0 ? 1 : 0;
+			this.p = p;
+		}
+
+		/* Returns null if the samples are too few to be tested. */
+		static Change of(String key, List<Double> base, List<Double> cand) {
+			double bm = mean(base);
+			double cm = mean(cand);
+			if (isDeterministic(key)) return new Change(key, bm, cm, bm == cm ? 1 : 0);
+
+			int bn = base.size();
+			int cn = cand.size();
+			double bv = variance(base, bm);
+			double cv = variance(cand, cm);
+			double t;
+			double df;
+			if (bn >= 2 && cn >= 2) { // Welch's t-test
+				double se = Math.sqrt(bv / bn + cv / cn);
+				if (se == 0) return new Change(key, bm, cm, bm == cm ? 1 : 0);
+				t = (cm - bm) / se;
+				df = Math.pow(bv / bn + cv / cn, 2)
+						/ (Math.pow(bv / bn, 2) / (bn - 1) + Math.pow(cv / cn, 2) / (cn - 1));
+			} else if (bn >= 2 || cn >= 2) { // single sample against a prediction interval
+				boolean single = cn == 1;
+				double m = single ? bm : cm;
+				double v = single ? bv : cv;
+				int n = single ? bn : cn;
+				double x = single ? cm : bm;
+				double se = Math.sqrt(v * (1 + 1.0 / n));
+				if (se == 0) return new Change(key, bm, cm, x == m ? 1 : 0);
+				t = (x - m) / se;
+				df = n - 1;
+			} else {
+				return null;
+			}
+			return new Change(key, bm, cm, studentP(t, df));
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%+8.1f%%  %-28s %14.0f -> %-14.0f q=%.4f  %s", relative * 100, metric, baseMean,
+					candMean, q, snippet);
+		}
+	}
+
+	/*
+	 * Parse-tree metrics do not vary between runs of the same code. DFA growth does: it depends on the
+	 * snippets processed before.
+	 */
+	private static boolean isDeterministic(String key) {
+		return key.endsWith(".nodes") || key.endsWith(".depth");
+	}
+
+	private static double mean(List<Double> values) {
+		double sum = 0;
+		for (double value : values) {
+			sum += value;
+		}
+		return sum / values.size();
+	}
+
+	private static double variance(List<Double> values, double mean) {
+		if (values.size() < 2) return 0;
+		double sum = 0;
+		for (double value : values) {
+			sum += (value - mean) * (value - mean);
+		}
+		return sum / (values.size() - 1);
+	}
+
+	/*
+	 * Benjamini-Hochberg adjustment of p-values: a change is significant at false discovery rate
+	 * alpha if its adjusted value is below alpha.
+	 */
+	static double[] adjust(double[] ps) {
+		int m = ps.length;
+		Integer[] order = new Integer[m];
+		for (int idx = 0; idx < m; idx++) {
+			order[idx] = idx;
+		}
+		Arrays.sort(order, Comparator.comparingDouble((Integer idx) -> ps[idx]));
+		double[] qs = new double[m];
+		double min = 1;
+		for (int rank = m; rank >= 1; rank--) {
+			int idx = order[rank - 1];
+			min = Math.min(min, ps[idx] * m / rank);
+			qs[idx] = min;
+		}
+		return qs;
+	}
+
+	/* Two-sided p-value of Student's t distribution */
+	static double studentP(double t, double df) {
+		return incompleteBeta(df / (df + t * t), df / 2, 0.5);
+	}
+
+	/* Two-sided p-value of the Wilcoxon signed-rank test against zero (normal approximation) */
+	static double signedRank(List<Double> values) {
+		List<Double> nonzero = new ArrayList<>();
+		for (double value : values) {
+			if (value != 0) nonzero.add(value);
+		}
+		int n = nonzero.size();
+		if (n == 0) return 1;
+		Collections.sort(nonzero, Comparator.comparingDouble(Math::abs));
+
+		double w = 0;
+		double ties = 0;
+		for (int idx = 0; idx < n;) {
+			int end = idx;
+			while (end + 1 < n && Math.abs(nonzero.get(end + 1)) == Math.abs(nonzero.get(idx))) {
+				end++;
+			}
+			double rank = (idx + end + 2) / 2.0;
+			for (int k = idx; k <= end; k++) {
+				if (nonzero.get(k) > 0) w += rank;
+			}
+			int cnt = end - idx + 1;
+			ties += cnt * ((double) cnt * cnt - 1);
+			idx = end + 1;
+		}
+		double mean = n * (n + 1) / 4.0;
+		double sd = Math.sqrt(n * (n + 1) * (2.0 * n + 1) / 24 - ties / 48);
+		if (sd == 0) return 1;
+		double z = Math.abs(w - mean) / sd;
+		return erfc(z / Math.sqrt(2));
+	}
+
+	/* Regularized incomplete beta function I_x(a, b) */
+	private static double incompleteBeta(double x, double a, double b) {
+		if (x <= 0) return 0;
+		if (x >= 1) return 1;
+		double front = Math.exp(lnGamma(a + b) - lnGamma(a) - lnGamma(b) + a * Math.log(x) + b * Math.log(1 - x));
+		if (x < (a + 1) / (a + b + 2)) return front * betaFraction(x, a, b) / a;
+		return 1 - front * betaFraction(1 - x, b, a) / b;
+	}
+
+	/* Continued fraction for the incomplete beta function (modified Lentz) */
+	private static double betaFraction(double x, double a, double b) {
+		final double tiny = 1e-300;
+		double c = 1;
+		double d = 1 - (a + b) * x / (a + 1);
+		if (Math.abs(d) < tiny) d = tiny;
+		d = 1 / d;
+		double h = d;
+		for (int m = 1; m <= 200; m++) {
+			int m2 = 2 * m;
+			double aa = m * (b - m) * x / ((a + m2 - 1) * (a + m2));
+			d = 1 + aa * d;
+			if (Math.abs(d) < tiny) d = tiny;
+			c = 1 + aa / c;
+			if (Math.abs(c) < tiny) c = tiny;
+			d = 1 / d;
+			h *= d * c;
+			aa = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1));
+			d = 1 + aa * d;
+			if (Math.abs(d) < tiny) d = tiny;
+			c = 1 + aa / c;
+			if (Math.abs(c) < tiny) c = tiny;
+			d = 1 / d;
+			double del = d * c;
+			h *= del;
+			if (Math.abs(del - 1) < 1e-12) break;
+		}
+		return h;
+	}
+
+	/* Lanczos approximation of ln(Gamma(x)) */
+	private static double lnGamma(double x) {
+		final double[] coef = { 76.18009172947146, -86.50532032941677, 24.01409824083091, -1.231739572450155,
+				0.1208650973866179e-2, -0.5395239384953e-5 };
+		double y = x;
+		double tmp = x + 5.5;
+		tmp -= (x + 0.5) * Math.log(tmp);
+		double ser = 1.000000000190015;
+		for (double c : coef) {
+			ser += c / ++y;
+		}
+		return -tmp + Math.log(2.5066282746310005 * ser / x);
+	}
+
+	/* Complementary error function (Chebyshev approximation, fractional error < 1.2e-7) */
+	private static double erfc(double x) {
+		double z = Math.abs(x);
+		double t = 1 / (1 + 0.5 * z);
+		double r = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+				+ t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+						+ t * (-0.82215223 + t * 0.17087277)))))))));
+		return x >= 0 ? r : 2 - r;
+	}
+
+	/*
+	 * Returns the HEAD commit of the git repository containing the given directory, read directly
+	 * from the repository files, or 'unknown'.
+	 */
+	static String gitCommit(File dir) {
+		try {
+			for (File d = dir.getCanonicalFile(); d != null; d = d.getParentFile()) {
+				File git = new File(d, ".git");
+				if (git.isFile()) { // worktree or submodule
+					String ref = TestUtils.read(git).trim();
+					if (!ref.startsWith("gitdir:")) break;
+					git = new File(ref.substring(7).trim());
+					if (!git.isAbsolute()) git = new File(d, git.getPath());
+				}
+				if (!git.isDirectory()) continue;
+
+				// HEAD is per worktree; branch refs are kept in the common dir
+				String head = TestUtils.read(new File(git, "HEAD")).trim();
+				if (!head.startsWith("ref:")) return head;
+				File common = git;
+				File commondir = new File(git, "commondir");
+				if (commondir.isFile()) {
+					common = new File(TestUtils.read(commondir).trim());
+					if (!common.isAbsolute()) common = new File(git, common.getPath());
+				}
+				String ref = head.substring(4).trim();
+				File refFile = new File(common, ref);
+				if (refFile.isFile()) return TestUtils.read(refFile).trim();
+				File packed = new File(common, "packed-refs");
+				if (packed.isFile()) {
+					for (String line : TestUtils.read(packed).split("\\r?\\n")) {
+						if (line.endsWith(" " + ref)) return line.substring(0, line.indexOf(' '));
+					}
+				}
+				break;
+			}
+		} catch (IOException e) {}
+		return "unknown";
+	}
+
+	private static String shortCommit(String commit) {
+		return commit.length() > 10 ? commit.substring(0, 10) : commit;
+	}
+}
@@ -0,0 +1,79 @@
+/* Copyright � 2015-2016 Gerald Rosenberg.
+ * Use of this source code is governed by a BSD-style
+ * license that can be found in the License.md file.
+ */
+package net.certiv.remark.test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Pins the statistics used by the {@link RunHistory} comparison report to known reference values,
+ * and checks the git commit lookup.
+ */
+public class RunHistoryTest {
+
+	private static final double Delta = 1e-4;
+
+	@Test
+	public void testStudentP() {
+		Assert.assertEquals(RunHistory.studentP(2.228, 10), 0.0500, Delta);
+		Assert.assertEquals(RunHistory.studentP(-2.228, 10), 0.0500, Delta);
+		Assert.assertEquals(RunHistory.studentP(2.0, 10), 0.0734, Delta);
+		Assert.assertEquals(RunHistory.studentP(12.706, 1), 0.0500, Delta);
+		Assert.assertEquals(RunHistory.studentP(1.96, 1e6), 0.0500, Delta);
+		Assert.assertEquals(RunHistory.studentP(0, 5), 1.0, Delta);
+	}
+
+	@Test
+	public void testSignedRank() {
+		// n = 10, all positive: W = 55, mean 27.5, sd 9.811, z = 2.803
+		Assert.assertEquals(RunHistory.signedRank(Arrays.asList(1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 7.0, 8.0, 9.0, 10.0)),
+				0.0051, Delta);
+		Assert.assertEquals(RunHistory.signedRank(Arrays.asList(-1.0, 1.0, -2.0, 2.0)), 1.0, Delta);
+		Assert.assertEquals(RunHistory.signedRank(Arrays.asList(0.0, 0.0)), 1.0, Delta);
+	}
+
+	@Test
+	public void testAdjust() {
+		double[] qs = RunHistory.adjust(new double[] { 0.01, 0.04, 0.03, 0.005 });
+		Assert.assertEquals(qs[0], 0.02, Delta);
+		Assert.assertEquals(qs[1], 0.04, Delta);
+		Assert.assertEquals(qs[2], 0.04, Delta);
+		Assert.assertEquals(qs[3], 0.02, Delta);
+		Assert.assertEquals(RunHistory.adjust(new double[0]).length, 0);
+	}
+
+	@Test
+	public void testGitCommitInWorktree() throws Exception {
+		String sha = "0123456789abcdef0123456789abcdef01234567";
+		Path tmp = Files.createTempDirectory("history");
+		Path common = tmp.resolve("repo/.git");
+		Path gitdir = common.resolve("worktrees/wt");
+		Path wt = tmp.resolve("wt");
+		write(common.resolve("refs/heads/topic"), sha + "\n");
+		write(gitdir.resolve("HEAD"), "ref: refs/heads/topic\n");
+		write(gitdir.resolve("commondir"), "../..\n");
+		write(wt.resolve(".git"), "gitdir: " + gitdir + "\n");
+		Assert.assertEquals(RunHistory.gitCommit(wt.toFile()), sha);
+
+		// packed branch refs are also kept in the common dir
+		Files.delete(common.resolve("refs/heads/topic"));
+		write(common.resolve("packed-refs"), "# pack-refs with: peeled\n" + sha + " refs/heads/topic\n");
+		Assert.assertEquals(RunHistory.gitCommit(wt.toFile()), sha);
+
+		write(gitdir.resolve("HEAD"), sha + "\n"); // detached
+		Assert.assertEquals(RunHistory.gitCommit(wt.toFile()), sha);
+		Assert.assertEquals(RunHistory.gitCommit(new File(tmp.toFile(), "none")), "unknown");
+	}
+
+	private static void write(Path path, String data) throws Exception {
+		Files.createDirectories(path.getParent());
+		Files.write(path, data.getBytes("UTF-8"));
+	}
+}
@@ -0,0 +1,233 @@
+/* Copyright � 2015-2016 Gerald Rosenberg.
+ * Use of this source code is governed by a BSD-style
+ * license that can be found in the License.md file.
+ */
+package net.certiv.remark.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide, size-bounded cache of snippet source and expected result file contents. Shared by
+ * all {@link TestBase} subclasses, so test classes that run over the same snippet corpus read each
+ * file from disk only once.
+ * <p>
+ * Entries are keyed by canonical path and are valid only while the file modification time and size
+ * are unchanged. Contents are held as UTF-8 bytes, optionally in direct (off-heap) buffers, and are
+ * decoded to a {@code String} only when read. Least recently used entries are evicted once the total
+ * cached byte size exceeds the configured limit.
+ * <p>
+ * A corpus larger than the cache, read in order once per test method, defeats LRU: every read
+ * misses and evicts. While the recent hit rate is below {@link #MinHitRate}, entries that would
+ * require an eviction are therefore not cached; the resident entries are kept and continue to hit.
+ * This also avoids churning direct buffers, whose memory is released only on GC.
+ */
+public class SnippetCache {
+
+	/** Default cache limit in bytes */
+	public static final long DefaultLimit = 64L * 1024 * 1024;
+	/** Recent hit rate below which entries are not cached if that would require an eviction */
+	public static final double MinHitRate = 0.05;
+	/* Number of reads over which the recent hit rate is measured */
+	private static final int Window = 1024;
+
+	private static final Map<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+	private static long limit = DefaultLimit;
+	private static boolean offHeap = false;
+	private static long size = 0;
+
+	private static long hits = 0;
+	private static long misses = 0;
+	private static long evictions = 0;
+
+	private static int windowReads = 0;
+	private static int windowHits = 0;
+	private static double hitRate = 1;
+
+	private SnippetCache() {}
+
+	/**
+	 * Sets the cache limit and storage mode. The cache is process-wide: the last configuration wins.
+	 * Entries already cached keep their storage mode; a lowered limit is applied immediately.
+	 *
+	 * @param limit maximum total size, in bytes, of the cached contents; zero disables caching
+	 * @param offHeap if true, contents are stored in direct buffers outside of the Java heap. Evicted
+	 *        buffers hold their memory until a GC, so set {@code -XX:MaxDirectMemorySize} well above
+	 *        the limit (e.g., twice it): when direct memory runs short, the JVM forces a GC and stalls
+	 *        before contents fall back to heap storage.
+	 */
+	public static synchronized void configure(long limit, boolean offHeap) {
+		SnippetCache.limit = Math.max(0, limit);
+		SnippetCache.offHeap = offHeap;
+		trim();
+	}
+
+	/**
+	 * Returns the content of the given file, reading from disk only if the file is not cached or has
+	 * changed since it was cached.
+	 *
+	 * @param file the file to read
+	 * @return the file content
+	 * @throws IOException
+	 */
+	public static String read(File file) throws IOException {
+		String key = file.getCanonicalPath();
+		long modified = file.lastModified();
+		long length = file.length();
+
+		Entry entry;
+		synchronized (SnippetCache.class) {
+			entry = entries.get(key);
+			if (entry != null && entry.modified == modified && entry.length == length) {
+				hits++;
+				windowHits++;
+			} else {
+				entry = null;
+				misses++;
+			}
+			if (++windowReads == Window) {
+				hitRate = (double) windowHits / Window;
+				windowReads = 0;
+				windowHits = 0;
+			}
+		}
+		if (entry != null) return entry.decode();
+
+		byte[] bytes = readBytes(file, length);
+		String data = decode(ByteBuffer.wrap(bytes));
+		// stat again: only cache if the file did not change while being read
+		if (bytes.length == length && file.lastModified() == modified) {
+			put(key, bytes, modified, length);
+		}
+		return data;
+	}
+
+	/**
+	 * Drops any cached content for the given file.
+	 *
+	 * @param file the file to drop
+	 */
+	public static void invalidate(File file) {
+		String key;
+		try {
+			key = file.getCanonicalPath();
+		} catch (IOException e) {
+			return;
+		}
+		synchronized (SnippetCache.class) {
+			Entry entry = entries.remove(key);
+			if (entry != null) size -= entry.length;
+		}
+	}
+
+	/** Drops all cached content and resets the statistics. */
+	public static synchronized void clear() {
+		entries.clear();
+		size = 0;
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+		windowReads = 0;
+		windowHits = 0;
+		hitRate = 1;
+	}
+
+	public static synchronized long getSize() {
+		return size;
+	}
+
+	public static synchronized long getHits() {
+		return hits;
+	}
+
+	public static synchronized long getMisses() {
+		return misses;
+	}
+
+	public static synchronized long getEvictions() {
+		return evictions;
+	}
+
+	private static synchronized void put(String key, byte[] bytes, long modified, long length) {
+		if (length > limit) return;
+		Entry cached = entries.get(key);
+		long needed = size - (cached != null ? cached.length : 0) + length;
+		if (needed > limit && hitRate < MinHitRate) return; // scanning: keep the resident entries
+		Entry entry = new Entry(store(bytes), modified, length);
+		Entry prior = entries.put(key, entry);
+		if (prior != null) size -= prior.length;
+		size += entry.length;
+		trim();
+	}
+
+	private static void trim() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (size > limit && it.hasNext()) {
+			size -= it.next().length;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/*
+	 * Reads through a stream rather than Files.readAllBytes, which allocates a temporary direct buffer
+	 * the size of the file.
+	 */
+	private static byte[] readBytes(File file, long length) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(length, Integer.MAX_VALUE - 8));
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buf = new byte[8192];
+			for (int len = in.read(buf); len != -1; len = in.read(buf)) {
+				out.write(buf, 0, len);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/*
+	 * Direct buffers are bounded by -XX:MaxDirectMemorySize and are released only on GC; if direct
+	 * memory is exhausted, the content is held on the heap instead.
+	 */
+	private static ByteBuffer store(byte[] bytes) {
+		if (offHeap) {
+			try {
+				ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+				buf.put(bytes);
+				buf.flip();
+				return buf;
+			} catch (OutOfMemoryError e) {}
+		}
+		return ByteBuffer.wrap(bytes);
+	}
+
+	private static String decode(ByteBuffer buf) throws IOException {
+		// reports malformed input, as does TestUtils.read
+		return StandardCharsets.UTF_8.newDecoder().decode(buf).toString();
+	}
+
+	private static class Entry {
+
+		private final ByteBuffer content;
+		private final long modified;
+		private final long length;
+
+		Entry(ByteBuffer content, long modified, long length) {
+			this.content = content;
+			this.modified = modified;
+			this.length = length;
+		}
+
+		String decode() throws IOException {
+			return SnippetCache.decode(content.duplicate());
+		}
+	}
+}
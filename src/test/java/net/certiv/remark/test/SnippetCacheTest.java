@@ -0,0 +1,151 @@
+/* Copyright � 2015-2016 Gerald Rosenberg.
+ * Use of this source code is governed by a BSD-style
+ * license that can be found in the License.md file.
+ */
+package net.certiv.remark.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the {@link SnippetCache} validation, invalidation, and eviction guarantees.
+ */
+public class SnippetCacheTest {
+
+	private Path dir;
+
+	@BeforeClass
+	public void setUpClass() throws Exception {
+		dir = Files.createTempDirectory("snippets");
+	}
+
+	@AfterClass
+	public void tearDownClass() throws Exception {
+		SnippetCache.clear();
+		SnippetCache.configure(SnippetCache.DefaultLimit, false);
+		for (File f : dir.toFile().listFiles()) {
+			f.delete();
+		}
+		dir.toFile().delete();
+	}
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		SnippetCache.clear();
+		SnippetCache.configure(1024, false);
+	}
+
+	@Test
+	public void testReloadOnSizeChange() throws Exception {
+		File f = write("size", "abc");
+		Assert.assertEquals(SnippetCache.read(f), "abc");
+		write("size", "abcd");
+		Assert.assertEquals(SnippetCache.read(f), "abcd");
+	}
+
+	@Test
+	public void testReloadOnModifiedChange() throws Exception {
+		File f = write("modified", "abc");
+		long modified = f.lastModified();
+		Assert.assertEquals(SnippetCache.read(f), "abc");
+		write("modified", "xyz");
+		f.setLastModified(modified + 2000);
+		Assert.assertEquals(SnippetCache.read(f), "xyz");
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		File f = write("invalidate", "abc");
+		long modified = f.lastModified();
+		Assert.assertEquals(SnippetCache.read(f), "abc");
+
+		// same size and modification time: only an invalidation reveals the change
+		TestUtils.writeFile(f.getPath(), "xyz");
+		f.setLastModified(modified);
+		Assert.assertEquals(SnippetCache.read(f), "abc");
+		SnippetCache.invalidate(f);
+		Assert.assertEquals(SnippetCache.read(f), "xyz");
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyRead() throws Exception {
+		SnippetCache.configure(10, false);
+		File a = write("a", "aaaa");
+		File b = write("b", "bbbb");
+		File c = write("c", "cccc");
+		SnippetCache.read(a);
+		SnippetCache.read(b);
+		SnippetCache.read(a);
+		SnippetCache.read(c); // evicts b
+		Assert.assertEquals(SnippetCache.getSize(), 8);
+		Assert.assertEquals(SnippetCache.getEvictions(), 1);
+
+		long hits = SnippetCache.getHits();
+		SnippetCache.read(a);
+		Assert.assertEquals(SnippetCache.getHits(), hits + 1);
+		SnippetCache.read(b);
+		Assert.assertEquals(SnippetCache.getHits(), hits + 1);
+	}
+
+	@Test
+	public void testScanKeepsResidentEntries() throws Exception {
+		SnippetCache.configure(10, false);
+		File[] files = new File[5];
+		for (int idx = 0; idx < files.length; idx++) {
+			files[idx] = write("scan" + idx, "ssss");
+		}
+
+		// a corpus larger than the cache, read in order: LRU alone never hits
+		for (int pass = 0; pass < 300; pass++) {
+			for (File f : files) {
+				SnippetCache.read(f);
+			}
+		}
+		Assert.assertTrue(SnippetCache.getHits() > 0, "resident entries hit once scanning is detected");
+		Assert.assertTrue(SnippetCache.getEvictions() < 1024, "evictions stop once scanning is detected");
+	}
+
+	@Test
+	public void testLargerThanLimitNotCached() throws Exception {
+		SnippetCache.configure(4, false);
+		File f = write("large", "0123456789");
+		Assert.assertEquals(SnippetCache.read(f), "0123456789");
+		Assert.assertEquals(SnippetCache.read(f), "0123456789");
+		Assert.assertEquals(SnippetCache.getSize(), 0);
+		Assert.assertEquals(SnippetCache.getHits(), 0);
+	}
+
+	@Test
+	public void testOffHeapDecodesAsHeap() throws Exception {
+		String text = "héllo ✓ 日本 😀";
+		File f = write("unicode", text);
+
+		SnippetCache.read(f);
+		String heap = SnippetCache.read(f);
+
+		SnippetCache.clear();
+		SnippetCache.configure(1024, true);
+		SnippetCache.read(f);
+		long hits = SnippetCache.getHits();
+		String offHeap = SnippetCache.read(f);
+
+		Assert.assertEquals(SnippetCache.getHits(), hits + 1);
+		Assert.assertEquals(heap, text);
+		Assert.assertEquals(offHeap, text);
+	}
+
+	private File write(String name, String data) throws IOException {
+		Path path = dir.resolve(name + ".txt");
+		Files.write(path, data.getBytes(StandardCharsets.UTF_8));
+		return path.toFile();
+	}
+}
@@ -14,7 +14,9 @@ import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.Parser;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.testng.Assert;
+import org.testng.annotations.AfterClass;
 import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -50,6 +52,26 @@ public class SnippetsTest extends TestBase {
 	/** The literal indent char(s) used for pretty-printing */
 	public static final String Indents = "  ";
 
+	/** Maximum size, in bytes, of the shared snippet cache; 0 disables caching */
+	public static final long CacheLimit = SnippetCache.DefaultLimit;
+	/**
+	 * If true, cached snippet contents are held outside of the Java heap. Set the JVM flag
+	 * {@code -XX:MaxDirectMemorySize} well above {@code CacheLimit} (e.g., twice it): evicted contents
+	 * hold direct memory until a GC, and running short forces a GC stall before falling back to heap.
+	 */
+	public static final boolean CacheOffHeap = false;
+
+	/** If true, independent tree-walker phases are run concurrently */
+	public static final boolean PhasesConcurrent = false;
+
+	/** If true, per-snippet metrics are appended to the run history - see {@link RunHistory} */
+	public static final boolean History = false;
+
+	/** If true, 'expected' files are never written by the tests - see {@link PendingArtifacts} */
+	public static final boolean Deferred = false;
+	/** The deferred 'expected' results written, in one pass, after the tests complete */
+	public static final PendingArtifacts.Accept Accept = PendingArtifacts.Accept.NONE;
+
 	// ------------------------------------------------------------------------
 	// Custom parsing methods - customization required ------------------------
 
@@ -87,6 +109,36 @@ public class SnippetsTest extends TestBase {
 		return tree;
 	}
 
+	/**
+	 * Define the named tree-walker phases applicable to the test target specific parse-tree. Each
+	 * phase is separately timed. Phases that do not depend on one another may be run concurrently.
+	 * 
+	 * @param phases the pipeline to add phases to
+	 */
+	@Override
+	public void definePhases(PhasePipeline phases) {
+		// TODO: customization required - see 'Use' instructions.
+		// Phases are defined once, but run for every snippet, possibly concurrently: create any
+		// stateful objects within the phase; anything captured here must be stateless and thread-safe.
+		// ParseTreeWalker walker = ParseTreeWalker.DEFAULT;
+		// phases.add("phase01", (tree, prior) -> {
+		// Converter conv = new Converter(new IOProcessor(new String[] { "-s" }));
+		// return conv.processPhase01(tree, walker, new PhaseState());
+		// });
+		// phases.add("phase02", (tree, prior) -> {
+		// Converter conv = new Converter(new IOProcessor(new String[] { "-s" }));
+		// return conv.processPhase02(tree, walker, (RemarkPhase01) prior.get("phase01"));
+		// }, "phase01");
+		// phases.add("phase03", (tree, prior) -> {
+		// Converter conv = new Converter(new IOProcessor(new String[] { "-s" }));
+		// return conv.processPhase03(tree, walker, (RemarkPhase02) prior.get("phase02"));
+		// }, "phase02");
+		// phases.add("phase04", (tree, prior) -> {
+		// Converter conv = new Converter(new IOProcessor(new String[] { "-s" }));
+		// return conv.processPhase04(tree, walker, (RemarkPhase03) prior.get("phase03"));
+		// }, "phase03");
+	}
+
 	/**
 	 * Create a result string using the test target specific parse-tree and any applicable
 	 * tree-walkers.
@@ -98,19 +150,25 @@ public class SnippetsTest extends TestBase {
 	public String createResults(ParseTree tree) {
 		// TODO: customization required - see 'Use' instructions.
 		String results = "";
-		// ParseTreeWalker walker = new ParseTreeWalker();
-		// Converter conv = new Converter(new IOProcessor(new String[] { "-s" }));
-		// RemarkPhase01 phase01 = conv.processPhase01(tree, walker, new PhaseState());
-		// RemarkPhase02 phase02 = conv.processPhase02(tree, walker, phase01);
-		// RemarkPhase03 phase03 = conv.processPhase03(tree, walker, phase02);
-		// RemarkPhase04 phase04 = conv.processPhase04(tree, walker, phase03);
-		// results = phase04.toString()
+		// PhasePipeline.Results phases = runPhases(tree);
+		// results = phases.get("phase04").toString();
 		return results;
 	}
 
 	// ------------------------------------------------------------------------
 	// Standard per-method configuration - change as desired ------------------
 
+	@BeforeClass
+	public void setUpClass() throws Exception {
+		SnippetCache.configure(CacheLimit, CacheOffHeap);
+	}
+
+	@AfterClass
+	public void tearDownClass() throws Exception {
+		recordHistory();
+		if (Deferred) acceptArtifacts(Accept, null);
+	}
+
 	@BeforeMethod
 	public void setUp() throws Exception {
 		// Log.setTestMode(true); // stop logger noise
@@ -190,4 +248,19 @@ public class SnippetsTest extends TestBase {
 	public String getIndents() {
 		return Indents;
 	}
+
+	@Override
+	public boolean getPhasesConcurrent() {
+		return PhasesConcurrent;
+	}
+
+	@Override
+	public boolean getRecordHistory() {
+		return History;
+	}
+
+	@Override
+	public boolean getDeferWrites() {
+		return Deferred;
+	}
 }
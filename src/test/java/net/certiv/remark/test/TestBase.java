@@ -7,12 +7,19 @@ package net.certiv.remark.test;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.Parser;
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.dfa.DFA;
 import org.antlr.v4.runtime.misc.Utils;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeProperty;
@@ -37,6 +44,19 @@ public abstract class TestBase {
 	/** Annotations map */
 	public static final ParseTreeProperty<Parser> annotations = new ParseTreeProperty<>();
 
+	/* Tree-walker phases - defined on first use */
+	private PhasePipeline phases;
+	/* Phase timings of the last results run, by snippet name */
+	private final Map<String, List<PhasePipeline.Timing>> phaseTimings = new ConcurrentHashMap<>();
+	/* Name of the snippet currently being processed by this thread */
+	private final ThreadLocal<String> current = new ThreadLocal<>();
+	/* Run history metrics - created on first use */
+	private volatile RunHistory history;
+	/* Missing and changed 'expected' results of deferred runs */
+	private final PendingArtifacts pending = new PendingArtifacts();
+	/* Last measured DFA state counts, by (static, shared) recognizer DFA cache */
+	private static final Map<DFA[], Long> dfaStates = new IdentityHashMap<>();
+
 	public TestBase() {
 		super();
 	}
@@ -53,9 +73,28 @@ public abstract class TestBase {
 
 	public abstract String getIndents();
 
+	/**
+	 * If true, assertion runs are read-only: missing and changed 'expected' results are collected as
+	 * {@link PendingArtifacts} rather than written. See {@link #acceptArtifacts}.
+	 */
+	public boolean getDeferWrites() {
+		return false;
+	}
+
+	/** If true, per-snippet metrics are collected for the run history */
+	public boolean getRecordHistory() {
+		return false;
+	}
+
 	public String lexSource(String name, String source, boolean echo, boolean hidden, boolean lexout) {
+		long start = System.nanoTime();
 		CommonTokenStream tokens = produceTokens(name, source);
 		tokens.fill();
+		measure(name, "lex.nanos", System.nanoTime() - start);
+		if (tokens.getTokenSource() instanceof Lexer && getRecordHistory()) {
+			Lexer lexer = (Lexer) tokens.getTokenSource();
+			measure(name, "lex.dfa", dfaGrowth(lexer.getInterpreter().decisionToDFA));
+		}
 		StringBuilder sb = new StringBuilder();
 		for (Token token : tokens.getTokens()) {
 			if (token.getChannel() == 0 || hidden) {
@@ -77,9 +116,21 @@ public abstract class TestBase {
 	public abstract CommonTokenStream createLexerStream(ANTLRInputStream is);
 
 	public String parseSource(String name, String source, boolean echo, boolean treeout) {
+		long start = System.nanoTime();
 		CommonTokenStream tokens = produceTokens(name, source);
 		ParseTree tree = createParseTree(tokens);
+		measure(name, "parse.nanos", System.nanoTime() - start);
 		Parser parser = annotations.get(tree);
+		if (getRecordHistory()) {
+			if (tokens.getTokenSource() instanceof Lexer) {
+				dfaGrowth(((Lexer) tokens.getTokenSource()).getInterpreter().decisionToDFA);
+			}
+			measure(name, "parse.dfa", dfaGrowth(parser.getInterpreter().decisionToDFA));
+			long[] footprint = new long[2];
+			footprint(tree, 1, footprint);
+			measure(name, "tree.nodes", footprint[0]);
+			measure(name, "tree.depth", footprint[1]);
+		}
 		List<String> ruleNamesList = Arrays.asList(parser.getRuleNames());
 		String strTree = convertToStringTree(tree, ruleNamesList);
 		annotations.removeFrom(tree);
@@ -132,21 +183,148 @@ public abstract class TestBase {
 	public String resultsSource(String name, String source, boolean echo, boolean treeout) {
 		CommonTokenStream tokens = produceTokens(name, source);
 		ParseTree tree = createParseTree(tokens);
-		String results = createResults(tree);
+		current.set(name);
+		phaseTimings.remove(name);
+		String results;
+		long start = System.nanoTime();
+		try {
+			results = createResults(tree);
+		} finally {
+			current.remove();
+		}
+		measure(name, "results.nanos", System.nanoTime() - start);
+		for (PhasePipeline.Timing timing : getPhaseTimings(name)) {
+			measure(name, "phase." + timing.name + ".nanos", timing.nanos);
+			if (timing.allocated >= 0) measure(name, "phase." + timing.name + ".alloc", timing.allocated);
+		}
+		if (getRecordHistory()) { // attribute DFA growth here to no snippet
+			if (tokens.getTokenSource() instanceof Lexer) {
+				dfaGrowth(((Lexer) tokens.getTokenSource()).getInterpreter().decisionToDFA);
+			}
+			Parser parser = annotations.get(tree);
+			if (parser != null) dfaGrowth(parser.getInterpreter().decisionToDFA);
+		}
 		annotations.removeFrom(tree);
-		if (echo && treeout) System.out.println(results + Eol);
+		if (echo && treeout) {
+			System.out.println(results + Eol);
+			for (PhasePipeline.Timing timing : getPhaseTimings(name)) {
+				System.out.println(timing);
+			}
+		}
 		return results;
 	}
 
 	public abstract String createResults(ParseTree tree);
 
+	/**
+	 * Registers the named tree-walker phases run by {@link #runPhases}. Called once, on first use.
+	 *
+	 * @param phases the pipeline to add phases to
+	 */
+	public void definePhases(PhasePipeline phases) {}
+
+	/** If true, independent tree-walker phases are run concurrently */
+	public boolean getPhasesConcurrent() {
+		return false;
+	}
+
+	/**
+	 * Runs the tree-walker phases defined by {@link #definePhases} against the given parse-tree.
+	 * Intended for use within {@link #createResults}; the per-phase timings are recorded against the
+	 * snippet being processed.
+	 *
+	 * @param tree a test target specific parser derived parse-tree
+	 * @return the phase results
+	 */
+	public PhasePipeline.Results runPhases(ParseTree tree) {
+		PhasePipeline.Results results = getPhases().run(tree, getPhasesConcurrent());
+		String name = current.get();
+		if (name != null) phaseTimings.put(name, results.getTimings());
+		return results;
+	}
+
+	/**
+	 * Returns the per-phase timings of the last results run of the named snippet.
+	 *
+	 * @param name the name of the snippet
+	 * @return the phase timings, in phase registration order; empty if none
+	 */
+	public List<PhasePipeline.Timing> getPhaseTimings(String name) {
+		List<PhasePipeline.Timing> timings = phaseTimings.get(name);
+		return timings != null ? timings : Collections.<PhasePipeline.Timing> emptyList();
+	}
+
+	/**
+	 * Appends the metrics collected in this run to the run history file in the base directory. See
+	 * {@link RunHistory} for comparing runs.
+	 */
+	public void recordHistory() {
+		RunHistory history = getHistory();
+		if (history == null) return;
+		try {
+			history.append();
+		} catch (IOException e) {
+			System.err.println("Write failed: " + e.getMessage());
+		}
+	}
+
+	private RunHistory getHistory() {
+		RunHistory history = this.history;
+		if (history == null && getRecordHistory()) {
+			synchronized (this) {
+				if (this.history == null) this.history = new RunHistory(getBaseDir());
+				history = this.history;
+			}
+		}
+		return history;
+	}
+
+	private void measure(String name, String metric, long value) {
+		RunHistory history = getHistory();
+		if (history != null) {
+			history.record(getClass().getSimpleName() + "/" + name, metric, value);
+		}
+	}
+
+	/*
+	 * Returns the number of DFA states added since the last measurement. Generated recognizers share
+	 * a static DFA cache, so the growth depends on the snippets processed before.
+	 */
+	private static long dfaGrowth(DFA[] dfas) {
+		long size = 0;
+		for (DFA dfa : dfas) {
+			size += dfa.states.size();
+		}
+		synchronized (dfaStates) {
+			Long prior = dfaStates.put(dfas, size);
+			return prior != null ? size - prior : size;
+		}
+	}
+
+	/* Accumulates the node count and maximum depth of the tree, in a single pass */
+	private void footprint(Tree t, long depth, long[] footprint) {
+		footprint[0]++;
+		footprint[1] = Math.max(footprint[1], depth);
+		for (int i = 0; i < t.getChildCount(); i++) {
+			footprint(t.getChild(i), depth + 1, footprint);
+		}
+	}
+
+	private synchronized PhasePipeline getPhases() {
+		if (phases == null) {
+			phases = new PhasePipeline();
+			definePhases(phases);
+		}
+		return phases;
+	}
+
 	public String readSrcString(String name) {
 		return readString(DataDir, name, getSnippetExt());
 	}
 
 	/**
 	 * Reads the expected lexer dump results from disk. If no file is found, writes the given data
-	 * to the lexer dump file.
+	 * to the lexer dump file or, if writes are deferred, records it as a pending artifact.
 	 * 
 	 * @param name
 	 *        the name of the snippet
@@ -160,7 +338,7 @@ public abstract class TestBase {
 
 	/**
 	 * Reads the expected parser results from disk. If no file is found, writes the given data to
-	 * the parser results file.
+	 * the parser results file or, if writes are deferred, records it as a pending artifact.
 	 * 
 	 * @param name
 	 *        the name of the snippet
@@ -174,7 +352,7 @@ public abstract class TestBase {
 
 	/**
 	 * Reads the expected parser results from disk. If no file is found, writes the given data to
-	 * the parser results file.
+	 * the parser results file or, if writes are deferred, records it as a pending artifact.
 	 * 
 	 * @param name
 	 *        the name of the snippet
@@ -188,19 +366,63 @@ public abstract class TestBase {
 
 	private String readStringExt(String name, String data, String ext) {
 		String expecting = readString(ResultDir, name, ext);
-		if (expecting.length() == 0) {
+		if (getDeferWrites()) {
+			File f = new File(convertName(ResultDir, name, ext));
+			if (expecting.length() == 0) {
+				pending.add(f, name, data, null);
+			} else if (!expecting.equals(data)) {
+				pending.add(f, name, data, expecting);
+			}
+		} else if (expecting.length() == 0) {
 			writeString(ResultDir, name, data, ext);
 		}
 		return expecting;
 	}
 
+	/**
+	 * Writes the selected pending artifacts, collected by this test's deferred assertion runs, as
+	 * 'expected' result files in a single parallel pass, and prints a summary of the changes and of
+	 * the artifacts left pending.
+	 *
+	 * @param accept the artifacts to write
+	 * @param prefix if not null, writes only artifacts of snippets whose name starts with the prefix
+	 * @return the number of files written
+	 */
+	public int acceptArtifacts(PendingArtifacts.Accept accept, String prefix) {
+		List<PendingArtifacts.Artifact> artifacts = pending.take(accept, prefix);
+		AtomicInteger written = new AtomicInteger();
+		artifacts.parallelStream().forEach(artifact -> {
+			if (writeFile(artifact.file, artifact.found)) written.incrementAndGet();
+		});
+
+		List<PendingArtifacts.Artifact> remaining = pending.list();
+		if (!artifacts.isEmpty()) {
+			System.out.println("Accepted " + written.get() + " of " + artifacts.size() + " artifacts:");
+			for (PendingArtifacts.Artifact artifact : artifacts) {
+				System.out.println("  " + artifact);
+			}
+		}
+		if (!remaining.isEmpty()) {
+			System.out.println("Pending " + remaining.size() + " artifacts:");
+			for (PendingArtifacts.Artifact artifact : remaining) {
+				System.out.println("  " + artifact);
+			}
+		}
+		return written.get();
+	}
+
+	/** Returns the pending artifacts collected by this test's deferred assertion runs */
+	public List<PendingArtifacts.Artifact> getPendingArtifacts() {
+		return pending.list();
+	}
+
 	private String readString(String dir, String name, String ext) {
 		name = convertName(dir, name, ext);
 		File f = new File(name);
 		String data = "";
 		if (f.isFile()) {
 			try {
-				data = TestUtils.read(f);
+				data = SnippetCache.read(f);
 			} catch (IOException e) {
 				System.err.println("Read failed: " + e.getMessage());
 			}
@@ -210,16 +432,19 @@ public abstract class TestBase {
 
 	private void writeString(String dir, String name, String data, String ext) {
 		name = convertName(dir, name, ext);
-		File f = new File(name);
+		writeFile(new File(name), data);
+	}
+
+	private boolean writeFile(File f, String data) {
 		File p = f.getParentFile();
 		if (!p.exists()) {
-			if (!p.mkdirs()) {
+			if (!p.mkdirs() && !p.isDirectory()) {
 				System.err.println("Failed to create directory: " + p.getAbsolutePath());
-				return;
+				return false;
 			}
 		} else if (p.isFile()) {
 			System.err.println("Cannot make directory: " + p.getAbsolutePath());
-			return;
+			return false;
 		}
 
 		if (f.exists() && f.isFile()) {
@@ -227,8 +452,12 @@ public abstract class TestBase {
 		}
 		try {
 			TestUtils.write(f, data, false);
+			return true;
 		} catch (IOException e) {
 			System.err.println("Write failed: " + e.getMessage());
+			return false;
+		} finally {
+			SnippetCache.invalidate(f);
 		}
 	}
 